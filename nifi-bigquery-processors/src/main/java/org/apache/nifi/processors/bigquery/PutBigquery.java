@@ -1,6 +1,8 @@
 package org.apache.nifi.processors.bigquery;
 
+import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
 import com.google.cloud.bigquery.InsertAllRequest;
 import com.google.cloud.bigquery.InsertAllResponse;
 import com.google.gson.JsonIOException;
@@ -9,34 +11,52 @@ import com.google.gson.JsonSyntaxException;
 import org.apache.nifi.annotation.behavior.SupportsBatching;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.processors.bigquery.utils.JsonParserUtils;
+import org.apache.nifi.processors.bigquery.utils.SpillLog;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 @SupportsBatching
 @Tags({"Google", "BigQuery", "Google Cloud", "Put", "Insert"})
 @CapabilityDescription("Puts a JSON document as a row into a BigQuery Table. The JSON fields are mapped with the table's columns names."
         + "If a JSON field not match with a table's column name, it will be ignored."
-        + " The FlowFile content must be JSON")
+        + " The FlowFile content must be JSON. If a Spill Directory is configured, the rows are written to a local log and the"
+        + " FlowFiles are acknowledged once the rows are durable on disk; a background task sends the rows to BigQuery,"
+        + " retrying while the service is unavailable.")
 public class PutBigquery extends AbstractBigqueryProcessor {
 
     static final PropertyDescriptor TABLE = new PropertyDescriptor.Builder()
@@ -62,8 +82,75 @@ public class PutBigquery extends AbstractBigqueryProcessor {
 			.addValidator(StandardValidators.INTEGER_VALIDATOR)
 			.build();
 
+    static final PropertyDescriptor SPILL_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Spill Directory")
+            .description("Local directory where rows are spilled before being sent to BigQuery. If set, FlowFiles are routed to success "
+                    + "once their rows are durable on disk, and the rows are sent in batches by a background task which retries "
+                    + "while BigQuery is unavailable. Rows rejected by BigQuery are logged, since their FlowFiles are already acknowledged. "
+                    + "Pending rows belong to the dataset and table they were spilled for: the processor can't be started with another "
+                    + "dataset or table until they are sent. Rows are delivered at least once: the Run Duration must be 0 ms, "
+                    + "otherwise FlowFiles are acknowledged after their rows can be sent and a failure sends them twice. "
+                    + "If not set, rows are inserted directly")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor SPILL_SEGMENT_SIZE = new PropertyDescriptor.Builder()
+            .name("Spill Segment Size")
+            .description("The size of every memory-mapped file of the spill log. A single row can't be larger than a segment. "
+                    + "Used only if Spill Directory is set")
+            .required(true)
+            .defaultValue("64 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor SPILL_MAX_SIZE = new PropertyDescriptor.Builder()
+            .name("Spill Max Size")
+            .description("The max amount of rows, not yet sent to BigQuery, kept in the spill log. "
+                    + "When it is reached, the processor stops taking FlowFiles until the rows are sent. Used only if Spill Directory is set")
+            .required(true)
+            .defaultValue("1 GB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor SPILL_DRAIN_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Spill Drain Interval")
+            .description("The time to wait before sending the spilled rows again, when the spill log is empty or BigQuery is unavailable. "
+                    + "While BigQuery keeps failing the time is doubled, up to 5 minutes. Used only if Spill Directory is set")
+            .required(true)
+            .defaultValue("1 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
     public static final List<PropertyDescriptor> properties = Collections.unmodifiableList(
-            Arrays.asList(SERVICE_ACCOUNT_CREDENTIALS_JSON, READ_TIMEOUT, CONNECTION_TIMEOUT, PROJECT, DATASET, TABLE,BATCH_SIZE));
+            Arrays.asList(SERVICE_ACCOUNT_CREDENTIALS_JSON, READ_TIMEOUT, CONNECTION_TIMEOUT, PROJECT, DATASET, TABLE,BATCH_SIZE,
+                    SPILL_DIRECTORY, SPILL_SEGMENT_SIZE, SPILL_MAX_SIZE, SPILL_DRAIN_INTERVAL));
+
+    /**
+     * Reasons of the row errors that could succeed sending the row again
+     * (see https://cloud.google.com/bigquery/troubleshooting-errors)
+     */
+    private static final Set<String> RETRYABLE_ERROR_REASONS = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList("backendError", "internalError", "rateLimitExceeded", "stopped", "timeout")));
+
+    /**
+     * Max time to wait before sending the spilled rows again, while BigQuery keeps failing
+     */
+    static final long MAX_SPILL_DRAIN_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Max size of the rows sent in one insert request, below the 10 MB limit of a BigQuery streaming insert
+     * (see https://cloud.google.com/bigquery/quotas#streaming_inserts)
+     */
+    static final int MAX_INSERT_REQUEST_BYTES = 9 * 1024 * 1024;
+
+    private volatile SpillLog spillLog;
+
+    private volatile ScheduledExecutorService spillDrainer;
+
+    private volatile boolean bigQueryUnavailable;
+
+    private volatile boolean spillDrainStopping;
 
 
     @Override
@@ -71,6 +158,105 @@ public class PutBigquery extends AbstractBigqueryProcessor {
         return properties;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        List<ValidationResult> results = new ArrayList<>();
+
+        // the property validator reports a malformed size, which can't be converted
+        String segmentSizeValue = validationContext.getProperty(SPILL_SEGMENT_SIZE).getValue();
+        if (StandardValidators.DATA_SIZE_VALIDATOR.validate(SPILL_SEGMENT_SIZE.getName(), segmentSizeValue, validationContext).isValid()) {
+            double segmentSize = validationContext.getProperty(SPILL_SEGMENT_SIZE).asDataSize(DataUnit.B);
+            if (segmentSize < SpillLog.MIN_SEGMENT_SIZE || segmentSize > Integer.MAX_VALUE) {
+                results.add(new ValidationResult.Builder()
+                        .subject(SPILL_SEGMENT_SIZE.getName())
+                        .input(segmentSizeValue)
+                        .valid(false)
+                        .explanation("a spill segment must be at least " + SpillLog.MIN_SEGMENT_SIZE + " B and not larger than 2 GB")
+                        .build());
+            }
+        }
+
+        return results;
+    }
+
+    @Override
+    public void onPropertyModified(PropertyDescriptor descriptor, String oldValue, String newValue) {
+        if (!SPILL_DIRECTORY.equals(descriptor) || oldValue == null || oldValue.equals(newValue)) {
+            return;
+        }
+
+        try {
+            long pendingSize = SpillLog.readPendingSize(Paths.get(oldValue));
+            if (pendingSize > 0) {
+                getLogger().warn("Spill Directory changed from " + oldValue + " which still has " + pendingSize
+                        + " bytes of rows not sent to BigQuery. They will be sent only when a processor uses that directory again");
+            }
+        } catch (IOException e) {
+            getLogger().warn("Spill Directory changed, cannot check whether " + oldValue + " has rows not sent to BigQuery: " + e.getMessage());
+        }
+    }
+
+    @OnScheduled
+    public void startSpill(final ProcessContext context) throws IOException {
+        PropertyValue spillDirectoryProperty = context.getProperty(SPILL_DIRECTORY);
+        if (!spillDirectoryProperty.isSet()) {
+            return;
+        }
+
+        final String table = context.getProperty(TABLE).getValue();
+        final String dataset = context.getProperty(DATASET).getValue();
+
+        // the log refuses to open if it has pending rows for another dataset or table
+        spillLog = new SpillLog(Paths.get(spillDirectoryProperty.getValue()), dataset + "." + table,
+                context.getProperty(SPILL_SEGMENT_SIZE).asDataSize(DataUnit.B).intValue(),
+                context.getProperty(SPILL_MAX_SIZE).asDataSize(DataUnit.B).longValue());
+        final int batchSize = batchSize(context);
+        final long drainInterval = context.getProperty(SPILL_DRAIN_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+
+        final String drainerThreadName = "PutBigquery-spill-drainer-" + getIdentifier();
+        ScheduledThreadPoolExecutor drainer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, drainerThreadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        // a drain waiting for its delay is dropped on stop
+        drainer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        spillDrainer = drainer;
+        bigQueryUnavailable = false;
+        spillDrainStopping = false;
+
+        new SpillDrainTask(drainer, spillLog, dataset, table, batchSize, drainInterval).schedule();
+    }
+
+    @OnStopped
+    public void stopSpill() throws InterruptedException, IOException {
+        // a running drain completes the batch in progress and doesn't send the next ones
+        spillDrainStopping = true;
+        try {
+            if (spillDrainer != null) {
+                spillDrainer.shutdown();
+                if (!spillDrainer.awaitTermination(1, TimeUnit.MINUTES)) {
+                    getLogger().warn("Spill drainer did not complete in time, stopping it");
+                    spillDrainer.shutdownNow();
+                    // let an interrupted drain complete before the spill log is closed
+                    if (!spillDrainer.awaitTermination(10, TimeUnit.SECONDS)) {
+                        getLogger().warn("Spill drainer did not stop, closing the spill log anyway");
+                    }
+                }
+            }
+        } finally {
+            // the log is closed even if the wait is interrupted, otherwise its directory stays locked
+            spillDrainer = null;
+            if (spillLog != null) {
+                try {
+                    spillLog.close();
+                } finally {
+                    spillLog = null;
+                }
+            }
+        }
+    }
+
     private List<String> formatBigqueryErrors(List<BigQueryError> errors) {
     	List<String> errorsString = new ArrayList<>();
     	for (BigQueryError error : errors) { errorsString.add(error.toString()); }
@@ -100,6 +286,12 @@ public class PutBigquery extends AbstractBigqueryProcessor {
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
 		Integer batchSize = batchSize(context);
 
+		if ( spillLog != null && spillLog.isFull() ) {
+			getLogger().debug("Spill log is full, waiting for the rows to be sent to BigQuery");
+			context.yield();
+			return;
+		}
+
         List<FlowFile> flowFiles = session.get(batchSize);
 
         List<InsertAllRequest.RowToInsert> rowsToInsert = new ArrayList<>();
@@ -112,8 +304,10 @@ public class PutBigquery extends AbstractBigqueryProcessor {
     	for (FlowFile flowFile : flowFiles) {
     		try {
     			JSONObject jsonDocument = parseJson(session.read(flowFile));
-        		InsertAllRequest.RowToInsert rowToInsert = InsertAllRequest.RowToInsert.of(jsonDocument.toMap());
-        		rowsToInsert.add(rowToInsert);
+    			// spilled rows are built by the drainer from the serialized document
+    			if ( spillLog == null ) {
+    				rowsToInsert.add(InsertAllRequest.RowToInsert.of(jsonDocument.toMap()));
+    			}
         		flowFilesToInsert.add(flowFile);
         		listOfContent.add(jsonDocument);
     		} catch (IOException e) {
@@ -131,7 +325,9 @@ public class PutBigquery extends AbstractBigqueryProcessor {
 			}
 		}
 
-    	if ( !rowsToInsert.isEmpty() ) {
+    	if ( !flowFilesToInsert.isEmpty() && spillLog != null ) {
+    		spill(session, flowFilesToInsert, listOfContent);
+    	} else if ( !rowsToInsert.isEmpty() ) {
     		InsertAllRequest  insertAllRequest  = InsertAllRequest.of(dataset, table, rowsToInsert);
         	InsertAllResponse insertAllResponse = getBigQuery().insertAll(insertAllRequest);
 
@@ -162,4 +358,187 @@ public class PutBigquery extends AbstractBigqueryProcessor {
         	}
     	}
     }
+
+    /**
+     * Write the rows to the spill log and acknowledge their flow files once the rows are durable
+     */
+    private void spill(ProcessSession session, List<FlowFile> flowFiles, List<JSONObject> listOfContent) {
+    	final SpillLog spillLog = this.spillLog;
+    	List<FlowFile> spilledFlowFiles = new ArrayList<>();
+    	List<byte[]> rows = new ArrayList<>();
+
+    	for ( int index = 0; index < flowFiles.size(); index++ ) {
+    		FlowFile flowFile = flowFiles.get(index);
+    		byte[] row = listOfContent.get(index).toString().getBytes(StandardCharsets.UTF_8);
+    		if ( row.length > MAX_INSERT_REQUEST_BYTES ) {
+    			getLogger().error("Row of " + row.length + " bytes can't be sent to BigQuery, it must be smaller than " + MAX_INSERT_REQUEST_BYTES + " bytes");
+    			flowFile = session.putAttribute(flowFile, "error_message", "Row of " + row.length + " bytes can't be sent to BigQuery, it must be smaller than " + MAX_INSERT_REQUEST_BYTES + " bytes");
+    			session.transfer(flowFile, REL_FAILURE);
+    		} else if ( spillLog.canAppend(row) ) {
+    			rows.add(row);
+    			spilledFlowFiles.add(flowFile);
+    		} else {
+    			getLogger().error("Row of " + row.length + " bytes can't be spilled, it must be smaller than the Spill Segment Size");
+    			flowFile = session.putAttribute(flowFile, "error_message", "Row of " + row.length + " bytes can't be spilled, it must be smaller than the Spill Segment Size");
+    			session.transfer(flowFile, REL_FAILURE);
+    		}
+    	}
+
+    	session.transfer(spilledFlowFiles, REL_SUCCESS);
+
+    	// the rows are appended and the session committed while holding the log, so no other batch is appended
+    	// and the drainer doesn't read the rows until the flow files are acknowledged. If anything fails the rows
+    	// are dropped, otherwise they would be sent again with new ids when the flow files are processed again.
+    	// With a Run Duration above 0 the commit is deferred by the framework, and a failure after it duplicates the rows
+    	synchronized ( spillLog ) {
+    		long batchOffset = spillLog.getWriteOffset();
+    		try {
+    			for ( byte[] row : rows ) {
+    				spillLog.append(row);
+    			}
+    			spillLog.sync();
+    			session.commit();
+    		} catch (IOException | RuntimeException e) {
+    			try {
+    				spillLog.truncate(batchOffset);
+    			} catch (IOException | RuntimeException truncateException) {
+    				e.addSuppressed(truncateException);
+    			}
+    			throw new ProcessException("Failed to spill rows", e);
+    		}
+    	}
+    }
+
+    /**
+     * Send the spilled rows to BigQuery in batches until the spill log is empty, BigQuery fails or the processor is stopped.
+     * A batch has at most batch size rows and {@link #MAX_INSERT_REQUEST_BYTES} bytes.
+     * The offset of a batch is committed only when its rows are inserted or rejected as invalid.
+     *
+     * @return true if the spill log is drained, false if it must be drained again later
+     */
+    boolean drainSpill(SpillLog spillLog, String dataset, String table, int batchSize) {
+    	final BigQuery bigQuery = getBigQuery();
+    	if ( bigQuery == null ) {
+    		return true;
+    	}
+
+    	try {
+    		List<SpillLog.Record> records;
+    		while ( !(records = spillLog.read(batchSize, MAX_INSERT_REQUEST_BYTES)).isEmpty() ) {
+    			if ( spillDrainStopping || Thread.currentThread().isInterrupted() ) {
+    				return false;
+    			}
+
+    			InsertAllRequest.Builder insertAllRequest = InsertAllRequest.newBuilder(dataset, table).setSkipInvalidRows(true);
+    			for ( SpillLog.Record record : records ) {
+    				// the row id lets BigQuery deduplicate the rows sent again after a failure
+    				JSONObject jsonDocument = new JSONObject(new String(record.getPayload(), StandardCharsets.UTF_8));
+    				insertAllRequest.addRow(spillLog.getLogId() + ":" + record.getOffset(), jsonDocument.toMap());
+    			}
+
+    			InsertAllResponse insertAllResponse = bigQuery.insertAll(insertAllRequest.build());
+
+    			for ( List<BigQueryError> errors : insertAllResponse.getInsertErrors().values() ) {
+    				for ( BigQueryError error : errors ) {
+    					if ( RETRYABLE_ERROR_REASONS.contains(error.getReason()) ) {
+    						markBigQueryUnavailable(error.toString());
+    						return false;
+    					}
+    				}
+    			}
+    			markBigQueryAvailable();
+
+    			for ( Map.Entry<Long, List<BigQueryError>> errors : insertAllResponse.getInsertErrors().entrySet() ) {
+    				String content = new String(records.get(errors.getKey().intValue()).getPayload(), StandardCharsets.UTF_8);
+    				getLogger().error("Spilled row rejected by BigQuery: " + formatBigqueryErrors(errors.getValue()) + " content: " + content);
+    			}
+
+    			spillLog.commit(records.get(records.size() - 1).getNextOffset());
+    		}
+    		return true;
+    	} catch (BigQueryException e) {
+    		if ( e.isRetryable() ) {
+    			markBigQueryUnavailable(e.getMessage());
+    		} else {
+    			// like a deleted table or a revoked permission, it needs a fix: report it at every attempt
+    			getLogger().error("Failed to send spilled rows to BigQuery, they will be sent again: " + e.getMessage(), e);
+    		}
+    		return false;
+    	} catch (Exception e) {
+    		getLogger().error("Failed to drain spill log: " + e.getMessage(), e);
+    		return false;
+    	}
+    }
+
+    /**
+     * Warn only when BigQuery becomes unavailable, not at every retry of an outage
+     */
+    private void markBigQueryUnavailable(String reason) {
+    	if ( !bigQueryUnavailable ) {
+    		bigQueryUnavailable = true;
+    		getLogger().warn("BigQuery is unavailable, spilled rows will be sent again: " + reason);
+    	} else {
+    		getLogger().debug("BigQuery is still unavailable: " + reason);
+    	}
+    }
+
+    private void markBigQueryAvailable() {
+    	if ( bigQueryUnavailable ) {
+    		bigQueryUnavailable = false;
+    		getLogger().info("BigQuery is available again, sending spilled rows");
+    	}
+    }
+
+    /**
+     * @param drained       true if the last drain emptied the spill log
+     * @param delay         the delay before the last drain
+     * @param drainInterval the configured Spill Drain Interval
+     * @return the delay before the next drain: the drain interval, or the last delay doubled up to
+     * {@link #MAX_SPILL_DRAIN_BACKOFF_MILLIS} if the drain failed
+     */
+    static long nextSpillDrainDelay(boolean drained, long delay, long drainInterval) {
+        if ( drained ) {
+            return drainInterval;
+        }
+        return Math.max(drainInterval, Math.min(delay * 2, MAX_SPILL_DRAIN_BACKOFF_MILLIS));
+    }
+
+    /**
+     * Drains the spill log and schedules itself again. While the drain fails the delay is doubled,
+     * up to {@link #MAX_SPILL_DRAIN_BACKOFF_MILLIS}, and it is reset to the drain interval once the log is drained.
+     */
+    private class SpillDrainTask implements Runnable {
+
+        private final ScheduledExecutorService drainer;
+        private final SpillLog spillLog;
+        private final String dataset;
+        private final String table;
+        private final int batchSize;
+        private final long drainInterval;
+
+        private long delay;
+
+        SpillDrainTask(ScheduledExecutorService drainer, SpillLog spillLog, String dataset, String table, int batchSize, long drainInterval) {
+            this.drainer = drainer;
+            this.spillLog = spillLog;
+            this.dataset = dataset;
+            this.table = table;
+            this.batchSize = batchSize;
+            this.drainInterval = drainInterval;
+        }
+
+        @Override
+        public void run() {
+            delay = nextSpillDrainDelay(drainSpill(spillLog, dataset, table, batchSize), delay, drainInterval);
+            schedule();
+        }
+
+        void schedule() {
+            try {
+                drainer.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // the processor is stopped
+            }
+        }
+    }
 }
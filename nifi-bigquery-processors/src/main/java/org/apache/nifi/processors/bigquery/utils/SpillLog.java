@@ -0,0 +1,598 @@
+package org.apache.nifi.processors.bigquery.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Local append-only log of records, stored in memory-mapped segment files.
+ *
+ * Every record is addressed by a logical offset which grows across segments. Records are appended by
+ * {@link #append(byte[])}, made durable by {@link #sync()} and consumed from the last committed offset
+ * by {@link #read(int)}. Once consumed, {@link #commit(long)} checkpoints the offset on disk and deletes
+ * the segments which are no longer needed, so a restart resumes from the last committed record.
+ *
+ * The methods are synchronized: the log can be shared between the writers and a single consumer.
+ * The directory is locked while the log is open, so it can't be used by two logs at the same time.
+ * The checkpoint keeps the target of the records, so pending records can't be consumed for another target.
+ */
+public class SpillLog implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "spill-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String LOCK_FILE = "lock";
+
+    /**
+     * Record header: payload length followed by the payload CRC32
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * The smallest segment, able to store a record of one byte
+     */
+    public static final int MIN_SEGMENT_SIZE = HEADER_SIZE + 1;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxSize;
+
+    /**
+     * Segments mapped by the logical offset of their first record
+     */
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    private String logId;
+    private String target;
+    private long writeOffset;
+    private long syncedOffset;
+    private long committedOffset;
+    private boolean closed;
+
+    /**
+     * Open the log stored in a directory, recovering the records written before a restart.
+     *
+     * @param directory   the directory of the segment files, created if missing
+     * @param target      the destination of the records, or null to keep the one of an existing log
+     * @param segmentSize the size in bytes of every new segment file
+     * @param maxSize     the number of pending bytes after which the log is considered full
+     * @throws IOException if the log can't be opened or recovered, the directory is used by another log
+     *                     or it has pending records for another target
+     */
+    public SpillLog(Path directory, String target, int segmentSize, long maxSize) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be at least " + MIN_SEGMENT_SIZE + " bytes");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lock = tryLock(lockChannel);
+            if (lock == null) {
+                throw new IOException("Spill directory " + directory + " is already used by another spill log");
+            }
+            loadCheckpoint(target);
+            loadSegments();
+            recover();
+            retarget(target);
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the id of this log, generated when the log is created and kept across restarts
+     */
+    public String getLogId() {
+        return logId;
+    }
+
+    /**
+     * @return the destination of the records
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Return the number of bytes appended and not yet committed to the log stored in a directory.
+     * The directory is only read: the log isn't locked nor recovered, so the size is approximate if the log is open.
+     *
+     * @param directory the directory of the log
+     * @return the pending bytes, 0 if there isn't a log in the directory
+     * @throws IOException if the checkpoint or the segments can't be read
+     */
+    public static long readPendingSize(Path directory) throws IOException {
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(checkpoint)) {
+            return 0;
+        }
+
+        long committedOffset;
+        try (InputStream in = Files.newInputStream(checkpoint);
+             DataInputStream data = new DataInputStream(in)) {
+            data.readUTF();
+            data.readUTF();
+            committedOffset = data.readLong();
+        }
+
+        TreeMap<Long, Path> segmentFiles = listSegments(directory);
+        if (segmentFiles.isEmpty()) {
+            return 0;
+        }
+
+        Map.Entry<Long, Path> last = segmentFiles.lastEntry();
+        long writeOffset;
+        try (FileChannel channel = FileChannel.open(last.getValue(), StandardOpenOption.READ)) {
+            writeOffset = last.getKey() + endOfRecords(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+
+        return Math.max(0, writeOffset - Math.max(committedOffset, segmentFiles.firstKey()));
+    }
+
+    /**
+     * @param payload the record content
+     * @return true if the record can be appended, i.e. it is not empty and it fits in a segment
+     */
+    public boolean canAppend(byte[] payload) {
+        return payload.length > 0 && HEADER_SIZE + payload.length <= segmentSize;
+    }
+
+    /**
+     * @return the offset of the next record to append, to {@link #truncate(long)} the records appended after it
+     */
+    public synchronized long getWriteOffset() {
+        return writeOffset;
+    }
+
+    /**
+     * Append a record at the end of the log. The record is not durable until {@link #sync()} is called.
+     *
+     * @param payload the record content
+     * @return the offset of the record
+     * @throws IOException if the record is empty or larger than a segment, or the segment can't be created
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        ensureOpen();
+
+        if (payload.length == 0) {
+            throw new IOException("Empty records can't be appended to the spill log");
+        }
+        if (HEADER_SIZE + payload.length > segmentSize) {
+            throw new IOException("Record of " + payload.length + " bytes exceeds the spill segment size of " + segmentSize + " bytes");
+        }
+
+        Map.Entry<Long, MappedByteBuffer> active = segments.lastEntry();
+        MappedByteBuffer buffer = active.getValue();
+        int position = (int) (writeOffset - active.getKey());
+
+        if (position + HEADER_SIZE + payload.length > buffer.capacity()) {
+            buffer = roll();
+            position = 0;
+        }
+
+        ByteBuffer content = buffer.duplicate();
+        content.position(position + HEADER_SIZE);
+        content.put(payload);
+        buffer.putInt(position + 4, checksum(payload));
+        buffer.putInt(position, payload.length);
+
+        long offset = writeOffset;
+        writeOffset += HEADER_SIZE + payload.length;
+        return offset;
+    }
+
+    /**
+     * Flush the appended records to disk. Only synced records are returned by {@link #read(int)}.
+     *
+     * @throws IOException if the log is closed
+     */
+    public synchronized void sync() throws IOException {
+        ensureOpen();
+
+        if (syncedOffset == writeOffset) {
+            return;
+        }
+        for (MappedByteBuffer buffer : segments.tailMap(segments.floorKey(syncedOffset), true).values()) {
+            buffer.force();
+        }
+        syncedOffset = writeOffset;
+    }
+
+    /**
+     * Drop the records appended after an offset, like the records of a batch which failed to be acknowledged.
+     *
+     * @param offset the offset of the first record to drop, see {@link #getWriteOffset()}
+     * @throws IOException if the log is closed or the dropped segments can't be deleted
+     */
+    public synchronized void truncate(long offset) throws IOException {
+        ensureOpen();
+
+        if (offset < committedOffset || offset > writeOffset) {
+            throw new IllegalArgumentException("Cannot truncate the spill log at " + offset + ", the offset must be between "
+                    + committedOffset + " and " + writeOffset);
+        }
+
+        while (segments.lastKey() > offset) {
+            Long last = segments.lastKey();
+            segments.remove(last);
+            Files.deleteIfExists(segmentPath(last));
+        }
+
+        Map.Entry<Long, MappedByteBuffer> active = segments.lastEntry();
+        MappedByteBuffer buffer = active.getValue();
+        int end = (int) Math.min(buffer.capacity(), writeOffset - active.getKey());
+        for (int index = (int) (offset - active.getKey()); index < end; index++) {
+            buffer.put(index, (byte) 0);
+        }
+        buffer.force();
+
+        writeOffset = offset;
+        syncedOffset = Math.min(syncedOffset, offset);
+    }
+
+    /**
+     * Read the synced records following the last committed offset. The records are not consumed until
+     * their offset is committed, so the same records are returned again if {@link #commit(long)} is not called.
+     *
+     * @param maxRecords max number of records to read
+     * @return the records, in offset order
+     * @throws IOException if the log is closed
+     */
+    public List<Record> read(int maxRecords) throws IOException {
+        return read(maxRecords, Long.MAX_VALUE);
+    }
+
+    /**
+     * Read the synced records following the last committed offset, up to a total payload size.
+     * The first record is always returned, even if it is larger than the max size.
+     *
+     * @param maxRecords max number of records to read
+     * @param maxBytes   max total size in bytes of the payloads
+     * @return the records, in offset order
+     * @throws IOException if the log is closed
+     */
+    public synchronized List<Record> read(int maxRecords, long maxBytes) throws IOException {
+        ensureOpen();
+
+        List<Record> records = new ArrayList<>();
+        long offset = committedOffset;
+        long bytes = 0;
+
+        while (records.size() < maxRecords && offset < syncedOffset) {
+            Map.Entry<Long, MappedByteBuffer> segment = segments.floorEntry(offset);
+            byte[] payload = readRecord(segment.getValue(), (int) (offset - segment.getKey()));
+
+            if (payload == null) {
+                //the segment is truncated, continue with the next one if any
+                Long nextSegment = segments.higherKey(segment.getKey());
+                if (nextSegment == null) {
+                    break;
+                }
+                offset = nextSegment;
+                continue;
+            }
+
+            if (!records.isEmpty() && bytes + payload.length > maxBytes) {
+                break;
+            }
+            bytes += payload.length;
+
+            long nextOffset = offset + HEADER_SIZE + payload.length;
+            records.add(new Record(offset, nextOffset, payload));
+            offset = nextOffset;
+        }
+
+        return records;
+    }
+
+    /**
+     * Mark as consumed all the records before an offset and delete the segments no more needed.
+     *
+     * @param offset the offset of the first record not consumed, usually {@link Record#getNextOffset()}
+     * @throws IOException if the checkpoint can't be written
+     */
+    public synchronized void commit(long offset) throws IOException {
+        ensureOpen();
+
+        if (offset <= committedOffset) {
+            return;
+        }
+        committedOffset = Math.min(offset, writeOffset);
+        writeCheckpoint();
+        purge();
+    }
+
+    /**
+     * @return the number of bytes appended and not yet committed
+     */
+    public synchronized long getPendingSize() {
+        return writeOffset - committedOffset;
+    }
+
+    /**
+     * @return true if the pending bytes reached the max size of the log
+     */
+    public synchronized boolean isFull() {
+        return getPendingSize() >= maxSize;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        for (MappedByteBuffer buffer : segments.values()) {
+            buffer.force();
+        }
+        segments.clear();
+        closed = true;
+
+        try {
+            lock.release();
+        } finally {
+            lockChannel.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Spill log " + directory + " is closed");
+        }
+    }
+
+    /**
+     * @return the lock of the directory, or null if it is held by another process or by another log of this JVM
+     */
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private void loadCheckpoint(String target) throws IOException {
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+
+        if (Files.exists(checkpoint)) {
+            try (InputStream in = Files.newInputStream(checkpoint);
+                 DataInputStream data = new DataInputStream(in)) {
+                logId = data.readUTF();
+                this.target = data.readUTF();
+                committedOffset = data.readLong();
+            }
+        } else {
+            logId = UUID.randomUUID().toString();
+            this.target = target != null ? target : "";
+            committedOffset = 0;
+            writeCheckpoint();
+        }
+    }
+
+    /**
+     * Change the target of the log, allowed only if there aren't pending records
+     */
+    private void retarget(String target) throws IOException {
+        if (target == null || target.equals(this.target)) {
+            return;
+        }
+        if (getPendingSize() > 0) {
+            throw new IOException("Spill log " + directory + " has " + getPendingSize() + " bytes of records for "
+                    + this.target + " not yet consumed, it can't be used for " + target);
+        }
+        this.target = target;
+        writeCheckpoint();
+    }
+
+    private void writeCheckpoint() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(bytes)) {
+            data.writeUTF(logId);
+            data.writeUTF(target);
+            data.writeLong(committedOffset);
+        }
+
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer content = ByteBuffer.wrap(bytes.toByteArray());
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, checkpoint, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void loadSegments() throws IOException {
+        for (Map.Entry<Long, Path> segmentFile : listSegments(directory).entrySet()) {
+            segments.put(segmentFile.getKey(), map(segmentFile.getValue(), Files.size(segmentFile.getValue())));
+        }
+    }
+
+    /**
+     * @return the segment files of a directory by the offset of their first record
+     */
+    private static TreeMap<Long, Path> listSegments(Path directory) throws IOException {
+        TreeMap<Long, Path> segmentFiles = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segmentFiles.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    //not a segment
+                }
+            }
+        }
+        return segmentFiles;
+    }
+
+    /**
+     * Find the end of the last segment and drop what follows it, like a record partially written before a crash
+     */
+    private void recover() throws IOException {
+        if (segments.isEmpty()) {
+            writeOffset = committedOffset;
+            segments.put(writeOffset, map(segmentPath(writeOffset), segmentSize));
+        } else {
+            Map.Entry<Long, MappedByteBuffer> last = segments.lastEntry();
+            MappedByteBuffer buffer = last.getValue();
+
+            int position = endOfRecords(buffer);
+            for (int index = position; index < buffer.capacity(); index++) {
+                buffer.put(index, (byte) 0);
+            }
+            buffer.force();
+
+            writeOffset = last.getKey() + position;
+        }
+
+        syncedOffset = writeOffset;
+        committedOffset = Math.max(Math.min(committedOffset, writeOffset), segments.firstKey());
+        purge();
+    }
+
+    /**
+     * Start a new segment at the current write offset
+     */
+    private MappedByteBuffer roll() throws IOException {
+        Map.Entry<Long, MappedByteBuffer> active = segments.lastEntry();
+        if (active.getKey() == writeOffset) {
+            //the active segment is empty and too small, replace it
+            segments.remove(active.getKey());
+            Files.deleteIfExists(segmentPath(active.getKey()));
+        }
+
+        MappedByteBuffer buffer = map(segmentPath(writeOffset), segmentSize);
+        segments.put(writeOffset, buffer);
+        return buffer;
+    }
+
+    /**
+     * Delete the segments whose records are all committed
+     */
+    private void purge() throws IOException {
+        while (segments.size() > 1) {
+            Long first = segments.firstKey();
+            Long second = segments.higherKey(first);
+            if (second > committedOffset) {
+                break;
+            }
+            segments.remove(first);
+            Files.deleteIfExists(segmentPath(first));
+        }
+    }
+
+    private Path segmentPath(long baseOffset) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, baseOffset, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * @return the position following the last valid record of a segment
+     */
+    private static int endOfRecords(ByteBuffer buffer) {
+        int position = 0;
+        byte[] payload;
+        while ((payload = readRecord(buffer, position)) != null) {
+            position += HEADER_SIZE + payload.length;
+        }
+        return position;
+    }
+
+    /**
+     * @return the payload of the record at a position, or null if there isn't a valid record
+     */
+    private static byte[] readRecord(ByteBuffer buffer, int position) {
+        if (position + HEADER_SIZE > buffer.capacity()) {
+            return null;
+        }
+
+        int length = buffer.getInt(position);
+        if (length <= 0 || length > buffer.capacity() - position - HEADER_SIZE) {
+            return null;
+        }
+
+        byte[] payload = new byte[length];
+        ByteBuffer content = buffer.duplicate();
+        content.position(position + HEADER_SIZE);
+        content.get(payload);
+
+        return checksum(payload) == buffer.getInt(position + 4) ? payload : null;
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A record read from the log
+     */
+    public static class Record {
+
+        private final long offset;
+        private final long nextOffset;
+        private final byte[] payload;
+
+        Record(long offset, long nextOffset, byte[] payload) {
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+            this.payload = payload;
+        }
+
+        /**
+         * @return the offset of the record
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return the offset following the record, to commit once the record is consumed
+         */
+        public long getNextOffset() {
+            return nextOffset;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+}
@@ -2,21 +2,38 @@ package org.apache.nifi.processors.bigquery;
 
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
 import com.google.cloud.bigquery.InsertAllRequest;
 import com.google.cloud.bigquery.InsertAllResponse;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processors.bigquery.utils.SpillLog;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 
@@ -24,6 +41,9 @@ public class PutBigqueryTest {
 
     protected PutBigquery putBigquery;
 
+    @Rule
+    public TemporaryFolder spillFolder = new TemporaryFolder();
+
 
     @Before
     public void setUp() {
@@ -48,6 +68,25 @@ public class PutBigqueryTest {
     }
 
 
+    @Test
+    public void shouldValidateSpillSegmentSize() {
+        final TestRunner putRunner = TestRunners.newTestRunner(putBigquery);
+
+        putRunner.setProperty(AbstractBigqueryProcessor.SERVICE_ACCOUNT_CREDENTIALS_JSON, "{}");
+        putRunner.setProperty(PutBigquery.TABLE, "test_table");
+        putRunner.setProperty(PutBigquery.DATASET, "test_dataset");
+        putRunner.assertValid();
+
+        putRunner.setProperty(PutBigquery.SPILL_SEGMENT_SIZE, "64 megs");
+        putRunner.assertNotValid();
+        putRunner.setProperty(PutBigquery.SPILL_SEGMENT_SIZE, "8 B");
+        putRunner.assertNotValid();
+        putRunner.setProperty(PutBigquery.SPILL_SEGMENT_SIZE, "3 GB");
+        putRunner.assertNotValid();
+        putRunner.setProperty(PutBigquery.SPILL_SEGMENT_SIZE, "1 MB");
+        putRunner.assertValid();
+    }
+
     @Test
     public void shouldSuccessfulWhenDataAreWriteCorrectly() {
 
@@ -148,4 +187,269 @@ public class PutBigqueryTest {
         putRunner.assertAllFlowFilesTransferred(AbstractBigqueryProcessor.REL_FAILURE, 1);
 
     }
+
+    @Test
+    public void shouldSuccessfulWhenRowsAreSpilledAndBigQueryIsUnavailable() throws Exception {
+
+        // Inject a mock BigQuery which is unavailable
+        final BigQuery mockBigQuery = Mockito.mock(BigQuery.class);
+        when(mockBigQuery.insertAll(any(InsertAllRequest.class))).thenThrow(new BigQueryException(503, "Service Unavailable"));
+
+        putBigquery = new PutBigquery() {
+            @Override
+            protected BigQuery createBigquery(ProcessContext context) {
+                return mockBigQuery;
+            }
+        };
+
+        final TestRunner putRunner = TestRunners.newTestRunner(putBigquery);
+
+        putRunner.setProperty(AbstractBigqueryProcessor.SERVICE_ACCOUNT_CREDENTIALS_JSON, "{}");
+        putRunner.setProperty(PutBigquery.TABLE, "test_table");
+        putRunner.setProperty(PutBigquery.DATASET, "test_dataset");
+        putRunner.setProperty(PutBigquery.SPILL_DIRECTORY, spillFolder.getRoot().getAbsolutePath());
+
+        String document = "{\"test_col\": 2}";
+        putRunner.enqueue(document.getBytes());
+
+        putRunner.run(1, true, true);
+
+        putRunner.assertAllFlowFilesTransferred(AbstractBigqueryProcessor.REL_SUCCESS, 1);
+
+        // the row is kept in the spill log until BigQuery accepts it
+        try (SpillLog spillLog = new SpillLog(spillFolder.getRoot().toPath(), null, 1024, 1024)) {
+            List<SpillLog.Record> records = spillLog.read(10);
+            Assert.assertEquals(1, records.size());
+            Assert.assertEquals("{\"test_col\":2}", new String(records.get(0).getPayload(), "UTF-8"));
+        }
+    }
+
+    @Test
+    public void shouldCommitSpilledRowsWhenInsertSucceeds() throws Exception {
+        final BigQuery mockBigQuery = Mockito.mock(BigQuery.class);
+        when(mockBigQuery.insertAll(any(InsertAllRequest.class))).thenReturn(insertAllResponse(Collections.emptyMap()));
+
+        PutBigquery drainingPutBigquery = (PutBigquery) spillDrainRunner(mockBigQuery).getProcessor();
+
+        try (SpillLog spillLog = spillLog("{\"test_col\":1}", "{\"test_col\":2}", "{\"test_col\":3}")) {
+            Assert.assertTrue(drainingPutBigquery.drainSpill(spillLog, "test_dataset", "test_table", 2));
+
+            // rows are sent in batches of the batch size
+            verify(mockBigQuery, times(2)).insertAll(any(InsertAllRequest.class));
+            Assert.assertTrue(spillLog.read(10).isEmpty());
+            Assert.assertEquals(0, spillLog.getPendingSize());
+        }
+    }
+
+    @Test
+    public void shouldNotCommitSpilledRowsWhenInsertFailsWithRetryableError() throws Exception {
+        final BigQuery mockBigQuery = Mockito.mock(BigQuery.class);
+        when(mockBigQuery.insertAll(any(InsertAllRequest.class))).thenReturn(insertAllResponse(
+                Collections.singletonMap(0L, Collections.singletonList(new BigQueryError("backendError", "location", "message")))));
+
+        PutBigquery drainingPutBigquery = (PutBigquery) spillDrainRunner(mockBigQuery).getProcessor();
+
+        try (SpillLog spillLog = spillLog("{\"test_col\":1}", "{\"test_col\":2}")) {
+            Assert.assertFalse(drainingPutBigquery.drainSpill(spillLog, "test_dataset", "test_table", 500));
+
+            Assert.assertEquals(2, spillLog.read(10).size());
+        }
+    }
+
+    @Test
+    public void shouldNotCommitSpilledRowsWhenBigQueryIsUnavailable() throws Exception {
+        final BigQuery mockBigQuery = Mockito.mock(BigQuery.class);
+        when(mockBigQuery.insertAll(any(InsertAllRequest.class))).thenThrow(new BigQueryException(503, "Service Unavailable"));
+
+        PutBigquery drainingPutBigquery = (PutBigquery) spillDrainRunner(mockBigQuery).getProcessor();
+
+        try (SpillLog spillLog = spillLog("{\"test_col\":1}")) {
+            Assert.assertFalse(drainingPutBigquery.drainSpill(spillLog, "test_dataset", "test_table", 500));
+
+            Assert.assertEquals(1, spillLog.read(10).size());
+        }
+    }
+
+    @Test
+    public void shouldLogErrorAtEveryAttemptWhenBigQueryFailureIsNotRetryable() throws Exception {
+        final BigQuery mockBigQuery = Mockito.mock(BigQuery.class);
+        when(mockBigQuery.insertAll(any(InsertAllRequest.class))).thenThrow(new BigQueryException(404, "Not found: Table test_table"));
+
+        final TestRunner putRunner = spillDrainRunner(mockBigQuery);
+        PutBigquery drainingPutBigquery = (PutBigquery) putRunner.getProcessor();
+
+        try (SpillLog spillLog = spillLog("{\"test_col\":1}")) {
+            Assert.assertFalse(drainingPutBigquery.drainSpill(spillLog, "test_dataset", "test_table", 500));
+            Assert.assertFalse(drainingPutBigquery.drainSpill(spillLog, "test_dataset", "test_table", 500));
+
+            Assert.assertEquals(1, spillLog.read(10).size());
+            Assert.assertEquals(2, putRunner.getLogger().getErrorMessages().size());
+        }
+    }
+
+    @Test
+    public void shouldCommitAndLogSpilledRowsRejectedAsInvalid() throws Exception {
+        final BigQuery mockBigQuery = Mockito.mock(BigQuery.class);
+        when(mockBigQuery.insertAll(any(InsertAllRequest.class))).thenReturn(insertAllResponse(
+                Collections.singletonMap(1L, Collections.singletonList(new BigQueryError("invalid", "location", "message")))));
+
+        final TestRunner putRunner = spillDrainRunner(mockBigQuery);
+        PutBigquery drainingPutBigquery = (PutBigquery) putRunner.getProcessor();
+
+        try (SpillLog spillLog = spillLog("{\"test_col\":1}", "{\"test_col\":\"wrong\"}")) {
+            Assert.assertTrue(drainingPutBigquery.drainSpill(spillLog, "test_dataset", "test_table", 500));
+
+            Assert.assertTrue(spillLog.read(10).isEmpty());
+            Assert.assertEquals(1, putRunner.getLogger().getErrorMessages().size());
+            Assert.assertTrue(putRunner.getLogger().getErrorMessages().get(0).getMsg().contains("{\"test_col\":\"wrong\"}"));
+        }
+    }
+
+    @Test
+    public void shouldSendSpilledRowsAgainWithSameInsertIds() throws Exception {
+        final BigQuery mockBigQuery = Mockito.mock(BigQuery.class);
+        when(mockBigQuery.insertAll(any(InsertAllRequest.class)))
+                .thenThrow(new BigQueryException(503, "Service Unavailable"))
+                .thenReturn(insertAllResponse(Collections.emptyMap()));
+
+        PutBigquery drainingPutBigquery = (PutBigquery) spillDrainRunner(mockBigQuery).getProcessor();
+
+        try (SpillLog spillLog = spillLog("{\"test_col\":1}", "{\"test_col\":2}")) {
+            List<SpillLog.Record> records = spillLog.read(10);
+
+            Assert.assertFalse(drainingPutBigquery.drainSpill(spillLog, "test_dataset", "test_table", 500));
+            Assert.assertTrue(drainingPutBigquery.drainSpill(spillLog, "test_dataset", "test_table", 500));
+
+            ArgumentCaptor<InsertAllRequest> insertAllRequests = ArgumentCaptor.forClass(InsertAllRequest.class);
+            verify(mockBigQuery, times(2)).insertAll(insertAllRequests.capture());
+
+            for (InsertAllRequest insertAllRequest : insertAllRequests.getAllValues()) {
+                Assert.assertEquals(2, insertAllRequest.getRows().size());
+                for (int index = 0; index < records.size(); index++) {
+                    Assert.assertEquals(spillLog.getLogId() + ":" + records.get(index).getOffset(),
+                            insertAllRequest.getRows().get(index).getId());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldNotTakeFlowFilesWhenSpillLogIsFull() throws Exception {
+        // the log already has more pending rows than its max size
+        spillLog("{\"test_col\":1}", "{\"test_col\":2}").close();
+
+        final BigQuery mockBigQuery = Mockito.mock(BigQuery.class);
+        when(mockBigQuery.insertAll(any(InsertAllRequest.class))).thenThrow(new BigQueryException(503, "Service Unavailable"));
+
+        final TestRunner putRunner = spillRunner(mockBigQuery);
+        putRunner.setProperty(PutBigquery.SPILL_MAX_SIZE, "10 B");
+
+        putRunner.enqueue("{\"test_col\": 3}".getBytes());
+
+        putRunner.run(1, true, true);
+
+        putRunner.assertQueueNotEmpty();
+        putRunner.assertTransferCount(AbstractBigqueryProcessor.REL_SUCCESS, 0);
+        putRunner.assertTransferCount(AbstractBigqueryProcessor.REL_FAILURE, 0);
+    }
+
+    @Test
+    public void shouldFailWhenRowIsLargerThanSpillSegment() {
+        final TestRunner putRunner = spillRunner(Mockito.mock(BigQuery.class));
+        putRunner.setProperty(PutBigquery.SPILL_SEGMENT_SIZE, "16 B");
+
+        putRunner.enqueue("{\"test_col\": 2}".getBytes());
+
+        putRunner.run(1, true, true);
+
+        putRunner.assertAllFlowFilesTransferred(AbstractBigqueryProcessor.REL_FAILURE, 1);
+        putRunner.getFlowFilesForRelationship(AbstractBigqueryProcessor.REL_FAILURE).get(0).assertAttributeExists("error_message");
+    }
+
+    @Test
+    public void shouldDropSpilledRowsWhenSessionCommitFails() throws Exception {
+        final TestRunner putRunner = spillRunner(Mockito.mock(BigQuery.class));
+        PutBigquery spillingPutBigquery = (PutBigquery) putRunner.getProcessor();
+
+        // mock a session which fails to acknowledge the flow file
+        FlowFile flowFile = mock(FlowFile.class);
+        ProcessSession session = mock(ProcessSession.class);
+        when(session.get(anyInt())).thenReturn(Collections.singletonList(flowFile));
+        when(session.read(flowFile)).thenReturn(new ByteArrayInputStream("{\"test_col\": 2}".getBytes()));
+        doThrow(new ProcessException("commit failed")).when(session).commit();
+
+        spillingPutBigquery.startSpill(putRunner.getProcessContext());
+        try {
+            spillingPutBigquery.onTrigger(putRunner.getProcessContext(), session);
+            Assert.fail("The session failure should be rethrown");
+        } catch (ProcessException e) {
+            verify(session).commit();
+        } finally {
+            spillingPutBigquery.stopSpill();
+        }
+
+        Assert.assertEquals(0, SpillLog.readPendingSize(spillFolder.getRoot().toPath()));
+    }
+
+    @Test
+    public void shouldBackOffSpillDrainWhileItFails() {
+        long maxBackoff = PutBigquery.MAX_SPILL_DRAIN_BACKOFF_MILLIS;
+
+        Assert.assertEquals(1000, PutBigquery.nextSpillDrainDelay(false, 0, 1000));
+        Assert.assertEquals(2000, PutBigquery.nextSpillDrainDelay(false, 1000, 1000));
+        Assert.assertEquals(4000, PutBigquery.nextSpillDrainDelay(false, 2000, 1000));
+        Assert.assertEquals(maxBackoff, PutBigquery.nextSpillDrainDelay(false, maxBackoff * 3 / 4, 1000));
+        Assert.assertEquals(maxBackoff, PutBigquery.nextSpillDrainDelay(false, maxBackoff, 1000));
+
+        // the delay is reset once the log is drained
+        Assert.assertEquals(1000, PutBigquery.nextSpillDrainDelay(true, maxBackoff, 1000));
+
+        // a drain interval longer than the max backoff is kept
+        Assert.assertEquals(2 * maxBackoff, PutBigquery.nextSpillDrainDelay(false, 2 * maxBackoff, 2 * maxBackoff));
+    }
+
+    /**
+     * @return a runner of a processor spilling the rows, which creates the BigQuery mock when scheduled
+     */
+    private TestRunner spillRunner(final BigQuery mockBigQuery) {
+        final TestRunner putRunner = TestRunners.newTestRunner(new PutBigquery() {
+            @Override
+            protected BigQuery createBigquery(ProcessContext context) {
+                return mockBigQuery;
+            }
+        });
+
+        putRunner.setProperty(AbstractBigqueryProcessor.SERVICE_ACCOUNT_CREDENTIALS_JSON, "{}");
+        putRunner.setProperty(PutBigquery.TABLE, "test_table");
+        putRunner.setProperty(PutBigquery.DATASET, "test_dataset");
+        putRunner.setProperty(PutBigquery.SPILL_DIRECTORY, spillFolder.getRoot().getAbsolutePath());
+        return putRunner;
+    }
+
+    /**
+     * @return a runner of a processor using the BigQuery mock, to drain the spill log without scheduling the processor
+     */
+    private TestRunner spillDrainRunner(final BigQuery mockBigQuery) {
+        return TestRunners.newTestRunner(new PutBigquery() {
+            @Override
+            protected BigQuery getBigQuery() {
+                return mockBigQuery;
+            }
+        });
+    }
+
+    private SpillLog spillLog(String... documents) throws Exception {
+        SpillLog spillLog = new SpillLog(spillFolder.getRoot().toPath(), "test_dataset.test_table", 1024, 1024 * 1024);
+        for (String document : documents) {
+            spillLog.append(document.getBytes(StandardCharsets.UTF_8));
+        }
+        spillLog.sync();
+        return spillLog;
+    }
+
+    private static InsertAllResponse insertAllResponse(Map<Long, List<BigQueryError>> errors) {
+        InsertAllResponse insertAllResponse = mock(InsertAllResponse.class);
+        when(insertAllResponse.getInsertErrors()).thenReturn(errors);
+        return insertAllResponse;
+    }
 }
@@ -0,0 +1,254 @@
+package org.apache.nifi.processors.bigquery.utils;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class SpillLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String TARGET = "test_dataset.test_table";
+
+    @Test
+    public void shouldReadOnlySyncedRecords() throws Exception {
+        try (SpillLog spillLog = new SpillLog(folder.getRoot().toPath(), TARGET, 1024, 1024 * 1024)) {
+            spillLog.append(bytes("{\"test_col\": 1}"));
+
+            assertThat(spillLog.read(10)).isEmpty();
+
+            spillLog.sync();
+
+            List<SpillLog.Record> records = spillLog.read(10);
+            assertThat(records).hasSize(1);
+            assertThat(string(records.get(0).getPayload())).isEqualTo("{\"test_col\": 1}");
+        }
+    }
+
+    @Test
+    public void shouldReadRecordsFromLastCommittedOffset() throws Exception {
+        try (SpillLog spillLog = new SpillLog(folder.getRoot().toPath(), TARGET, 1024, 1024 * 1024)) {
+            spillLog.append(bytes("first"));
+            spillLog.append(bytes("second"));
+            spillLog.append(bytes("third"));
+            spillLog.sync();
+
+            List<SpillLog.Record> records = spillLog.read(2);
+            assertThat(records).hasSize(2);
+
+            //not committed records are read again
+            assertThat(spillLog.read(2)).hasSize(2);
+
+            spillLog.commit(records.get(1).getNextOffset());
+
+            records = spillLog.read(10);
+            assertThat(records).hasSize(1);
+            assertThat(string(records.get(0).getPayload())).isEqualTo("third");
+        }
+    }
+
+    @Test
+    public void shouldRecoverRecordsAndCheckpointAfterReopen() throws Exception {
+        Path directory = folder.getRoot().toPath();
+
+        String logId;
+        try (SpillLog spillLog = new SpillLog(directory, TARGET, 1024, 1024 * 1024)) {
+            logId = spillLog.getLogId();
+            spillLog.append(bytes("first"));
+            spillLog.append(bytes("second"));
+            spillLog.sync();
+            spillLog.commit(spillLog.read(1).get(0).getNextOffset());
+        }
+
+        try (SpillLog spillLog = new SpillLog(directory, TARGET, 1024, 1024 * 1024)) {
+            assertThat(spillLog.getLogId()).isEqualTo(logId);
+
+            List<SpillLog.Record> records = spillLog.read(10);
+            assertThat(records).hasSize(1);
+            assertThat(string(records.get(0).getPayload())).isEqualTo("second");
+
+            //new records are appended after the recovered ones
+            spillLog.append(bytes("third"));
+            spillLog.sync();
+            assertThat(spillLog.read(10)).hasSize(2);
+        }
+    }
+
+    @Test
+    public void shouldRollSegmentsAndDeleteThemOnceCommitted() throws Exception {
+        Path directory = folder.getRoot().toPath();
+
+        try (SpillLog spillLog = new SpillLog(directory, TARGET, 64, 1024 * 1024)) {
+            for (int index = 0; index < 10; index++) {
+                spillLog.append(bytes("record number " + index));
+            }
+            spillLog.sync();
+            assertThat(directory.toFile().list((dir, name) -> name.endsWith(".log")).length).isGreaterThan(1);
+
+            List<SpillLog.Record> records = spillLog.read(100);
+            assertThat(records).hasSize(10);
+            for (int index = 0; index < 10; index++) {
+                assertThat(string(records.get(index).getPayload())).isEqualTo("record number " + index);
+            }
+
+            spillLog.commit(records.get(9).getNextOffset());
+
+            assertThat(directory.toFile().list((dir, name) -> name.endsWith(".log")).length).isEqualTo(1);
+            assertThat(spillLog.read(100)).isEmpty();
+            assertThat(spillLog.getPendingSize()).isZero();
+        }
+    }
+
+    @Test
+    public void shouldReadRecordsUpToMaxBytes() throws Exception {
+        try (SpillLog spillLog = new SpillLog(folder.getRoot().toPath(), TARGET, 1024, 1024 * 1024)) {
+            spillLog.append(bytes("first record"));
+            spillLog.append(bytes("second record"));
+            spillLog.append(bytes("third record"));
+            spillLog.sync();
+
+            assertThat(spillLog.read(10, 24)).hasSize(1);
+            assertThat(spillLog.read(10, 25)).hasSize(2);
+
+            //the first record is returned even if it is larger than the max size
+            assertThat(spillLog.read(10, 1)).hasSize(1);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectRecordsLargerThanASegment() throws Exception {
+        try (SpillLog spillLog = new SpillLog(folder.getRoot().toPath(), TARGET, 64, 1024 * 1024)) {
+            spillLog.append(new byte[64]);
+        }
+    }
+
+    @Test
+    public void shouldBeFullWhenPendingRecordsReachMaxSize() throws Exception {
+        try (SpillLog spillLog = new SpillLog(folder.getRoot().toPath(), TARGET, 1024, 32)) {
+            spillLog.append(bytes("first record"));
+            assertThat(spillLog.isFull()).isFalse();
+
+            spillLog.append(bytes("second record"));
+            assertThat(spillLog.isFull()).isTrue();
+
+            spillLog.sync();
+            spillLog.commit(spillLog.read(10).get(1).getNextOffset());
+            assertThat(spillLog.isFull()).isFalse();
+        }
+    }
+
+    @Test
+    public void shouldNotOpenADirectoryUsedByAnotherLog() throws Exception {
+        Path directory = folder.getRoot().toPath();
+
+        try (SpillLog spillLog = new SpillLog(directory, TARGET, 1024, 1024 * 1024)) {
+            try {
+                new SpillLog(directory, TARGET, 1024, 1024 * 1024);
+                Assert.fail("The directory should be locked");
+            } catch (IOException e) {
+                assertThat(e.getMessage()).contains("is already used by another spill log");
+            }
+        }
+
+        //the lock is released on close
+        new SpillLog(directory, TARGET, 1024, 1024 * 1024).close();
+    }
+
+    @Test
+    public void shouldNotChangeTargetWhenThereArePendingRecords() throws Exception {
+        Path directory = folder.getRoot().toPath();
+
+        try (SpillLog spillLog = new SpillLog(directory, TARGET, 1024, 1024 * 1024)) {
+            spillLog.append(bytes("first"));
+            spillLog.sync();
+        }
+        assertThat(SpillLog.readPendingSize(directory)).isPositive();
+
+        try {
+            new SpillLog(directory, "test_dataset.other_table", 1024, 1024 * 1024);
+            Assert.fail("The target should not change");
+        } catch (IOException e) {
+            assertThat(e.getMessage()).contains(TARGET);
+        }
+
+        try (SpillLog spillLog = new SpillLog(directory, TARGET, 1024, 1024 * 1024)) {
+            assertThat(spillLog.getTarget()).isEqualTo(TARGET);
+            spillLog.commit(spillLog.read(10).get(0).getNextOffset());
+        }
+        assertThat(SpillLog.readPendingSize(directory)).isZero();
+
+        //once the pending records are consumed the log can be used for another target
+        try (SpillLog spillLog = new SpillLog(directory, "test_dataset.other_table", 1024, 1024 * 1024)) {
+            assertThat(spillLog.getTarget()).isEqualTo("test_dataset.other_table");
+        }
+    }
+
+    @Test
+    public void shouldReadPendingSizeWithoutChangingTheDirectory() throws Exception {
+        Path directory = folder.getRoot().toPath();
+
+        try (SpillLog spillLog = new SpillLog(directory, TARGET, 1024, 1024 * 1024)) {
+            spillLog.append(bytes("first"));
+            spillLog.append(bytes("second"));
+            spillLog.sync();
+            spillLog.commit(spillLog.read(1).get(0).getNextOffset());
+
+            //the directory is not locked
+            assertThat(SpillLog.readPendingSize(directory)).isEqualTo(8 + 6);
+        }
+
+        String[] files = directory.toFile().list();
+        assertThat(SpillLog.readPendingSize(directory)).isEqualTo(8 + 6);
+        assertThat(directory.toFile().list().length).isEqualTo(files.length);
+    }
+
+    @Test
+    public void shouldDropRecordsAppendedAfterTruncateOffset() throws Exception {
+        Path directory = folder.getRoot().toPath();
+
+        try (SpillLog spillLog = new SpillLog(directory, TARGET, 64, 1024 * 1024)) {
+            spillLog.append(bytes("first"));
+            spillLog.sync();
+
+            long batchOffset = spillLog.getWriteOffset();
+            for (int index = 0; index < 10; index++) {
+                spillLog.append(bytes("record number " + index));
+            }
+            spillLog.sync();
+
+            spillLog.truncate(batchOffset);
+
+            List<SpillLog.Record> records = spillLog.read(100);
+            assertThat(records).hasSize(1);
+            assertThat(string(records.get(0).getPayload())).isEqualTo("first");
+
+            spillLog.append(bytes("second"));
+            spillLog.sync();
+        }
+
+        //the dropped records are not recovered
+        try (SpillLog spillLog = new SpillLog(directory, TARGET, 64, 1024 * 1024)) {
+            List<SpillLog.Record> records = spillLog.read(100);
+            assertThat(records).hasSize(2);
+            assertThat(string(records.get(1).getPayload())).isEqualTo("second");
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}